@@ -127,18 +127,53 @@ public class MemBrain_XOR_Connect_Test {
 				double NET_TOL = 1e-5;
 				double net_perr = MBDllWrapper.MBGetLastNetError();
 				double net_cerr = net_perr + 2*NET_TOL;
-				// Start training phase
-				int teacher_val = MBDllWrapper.MBTeachStep();
-				int teacher_cnt = 1;
-				while ( (teacher_val == MBDllWrapper.MB_TR_OK) && ((net_cerr-net_perr) > NET_TOL) ) {
-					teacher_val = MBDllWrapper.MBTeachStep();
-					net_perr = net_cerr;
-					net_cerr = MBDllWrapper.MBGetLastNetError();
-					System.out.println("Cnt= " + teacher_cnt + " Net err= " + net_cerr);
-					teacher_cnt = teacher_cnt+1;
+				
+				try {
+					// Keep an in-memory checkpoint of the best net seen during training
+					MBNetLayout layout = MBNetLayout.scan();
+					MBNetSnapshot best = MBNetSnapshot.capture(layout);
+					double best_err = Double.MAX_VALUE;
+					System.out.println("Layout: " + layout.getNeuronCount() + " neurons, " + layout.getLinkCount() + " links");
+					// Start training phase
+					int teacher_val = MBDllWrapper.MBTeachStep();
+					int teacher_cnt = 1;
+					while ( (teacher_val == MBDllWrapper.MB_TR_OK) && ((net_cerr-net_perr) > NET_TOL) ) {
+						teacher_val = MBDllWrapper.MBTeachStep();
+						net_perr = net_cerr;
+						net_cerr = MBDllWrapper.MBGetLastNetError();
+						System.out.println("Cnt= " + teacher_cnt + " Net err= " + net_cerr);
+						if ( net_cerr < best_err ) {
+							best_err = net_cerr;
+							best.capture();
+						}
+						teacher_cnt = teacher_cnt+1;
+					}
+					System.out.println("Net err= " + net_cerr + " Teacher val= " + teacher_val);
+					MBDllWrapper.MBStopTeaching(); // End training
+				
+					// Restore best checkpoint (throws if the net no longer matches the layout)
+					best.restore();
+					System.out.println("SUCCESS: best net restored (Net err= " + best_err + ")");
+
+					// Prune small weights and compare full vs. pruned net on the lesson
+					double[][] in = MBNetPruner.readLessonInputs();
+					double[][] target = MBNetPruner.readLessonOutputs();
+					MBSparseNet full = MBSparseNet.build(layout, best);
+					MBNetPruner.Measurement before = MBNetPruner.measure(full, in, target, 0.5, 1000);
+					boolean[] keep = MBNetPruner.selectByThreshold(layout, best, 0.1);
+					MBNetLayout pruned = MBNetPruner.apply(layout, keep);
+					MBSparseNet sparse = MBSparseNet.build(pruned, MBNetSnapshot.capture(pruned));
+					MBNetPruner.Report report = new MBNetPruner.Report(before,
+							MBNetPruner.measure(sparse, in, target, 0.5, 1000));
+					System.out.println(report);
+					if ( report.isConsistent() ) {
+						System.out.println("SUCCESS: sparse net matches DLL think step");
+					} else {
+						System.out.println("ERROR: sparse net does not match DLL think step");
+					}
+				} catch (IllegalStateException e) {
+					System.out.println("ERROR: " + e.getMessage());
 				}
-				System.out.println("Net err= " + net_cerr + " Teacher val= " + teacher_val);
-				MBDllWrapper.MBStopTeaching(); // End training
 				
 			} else {
 				System.out.println("ERROR: cannot load teacher");
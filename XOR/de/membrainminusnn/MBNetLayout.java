@@ -0,0 +1,415 @@
+package de.membrainminusnn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import de.membrainminusnn.MBDllWrapper.MBLinkProp;
+
+/**
+Describes the neurons and links of the currently selected net in a stable
+topological order so that parameters can be moved in bulk between the DLL and
+flat primitive arrays (see MBNetSnapshot).
+
+Neurons are numbered in the order
+
+	inputs, hidden layer 0 .. hidden layer n-1, context neurons, unresolved neurons, outputs
+
+Links are grouped by their target neuron (in neuron order) and, within a group,
+ordered by their source neuron. The link range of the target neuron n is
+[getLinkStart(n), getLinkStart(n+1)), i.e. the incoming links are stored as a
+compressed sparse row table.
+
+The MemBrain DLL does not offer a way to enumerate links, so the links are found
+by probing pairs of neurons through the Extra Selection: the target neuron is put
+into the Extra Selection once, then for every candidate source neuron 4 JNI calls
+are made (select source, MBSelectToExtra, MBGetSelectedLinkProp, GetLastError).
+
+- MBNetLayout.scan() probes every pair of neurons. This finds all links but costs
+  4 * n^2 JNI calls for n neurons, i.e. millions of calls for a few thousand
+  neurons.
+- MBNetLayout.scanLayered() only probes the sources of the previous layer (inputs
+  for hidden layer 0, hidden layer l-1 for hidden layer l, the last hidden layer
+  for the outputs) plus all context and unresolved neurons. For layered nets this
+  is about 4 calls per possible link between neighboring layers. Links that skip
+  layers, end at an input neuron or go backwards are not found.
+
+Either scan is a one-time cost per net structure: the resulting layout can be
+reused for any number of snapshots as long as no neurons or links are added or
+removed.
+
+Both scans throw an IllegalStateException if the net structure cannot be read,
+e.g. because no net is selected.
+
+MemBrain derives the hidden layers and the unresolved neurons from the links, so
+the (kind, layer, index) address of a neuron can change when links are added or
+deleted. The layout therefore also records the position of every neuron, which
+identifies a neuron across structural changes (see findNeuron() and mapLinks()).
+*/
+public class MBNetLayout
+{
+	/// Possible neuron kinds (select methods of MBDllWrapper)
+	public static final int MB_NK_INPUT = 0;
+	public static final int MB_NK_HIDDEN = 1;
+	public static final int MB_NK_CONTEXT = 2;
+	public static final int MB_NK_UNRESOLVED = 3;
+	public static final int MB_NK_OUTPUT = 4;
+
+	private final boolean layered;			// created by scanLayered()
+	private final int[] neuronKind;
+	private final int[] neuronLayer;		// hidden layer index, -1 for all other kinds
+	private final int[] neuronIdx;			// index inside the layer
+	private final int[] linkStart;			// neuron count + 1 entries
+	private final int[] linkSrc;
+	private final int[] linkDst;
+	private final long[] neuronPos;			// position (x, y) packed by pos()
+	private final HashMap<Long, Integer> posIndex = new HashMap<Long, Integer>();	// -1 if ambiguous
+	private final int[] selX = new int[1];		// reused by isSelected()
+	private final int[] selY = new int[1];
+
+	private MBNetLayout(boolean layered, int[] neuronKind, int[] neuronLayer, int[] neuronIdx,
+			long[] neuronPos, int[] linkStart, int[] linkSrc, int[] linkDst)
+	{
+		this.layered = layered;
+		this.neuronKind = neuronKind;
+		this.neuronLayer = neuronLayer;
+		this.neuronIdx = neuronIdx;
+		this.neuronPos = neuronPos;
+		this.linkStart = linkStart;
+		this.linkSrc = linkSrc;
+		this.linkDst = linkDst;
+		for (int n = 0; n < neuronPos.length; n++) {
+			posIndex.put(neuronPos[n], posIndex.containsKey(neuronPos[n]) ? -1 : n);
+		}
+	}
+
+	private static long pos(int x, int y)
+	{
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/// Scan the structure of the currently selected net probing all neuron pairs.
+	/// Clears the current selection, the Extra Selection and any pending wrapper error code.
+	public static MBNetLayout scan()
+	{
+		return scan(false);
+	}
+
+	/// Scan the structure of the currently selected net probing only links between
+	/// neighboring layers (see class description).
+	/// Clears the current selection, the Extra Selection and any pending wrapper error code.
+	public static MBNetLayout scanLayered()
+	{
+		return scan(true);
+	}
+
+	private static MBNetLayout scan(boolean layered)
+	{
+		MBDllWrapper.GetLastError();
+
+		int inputs = MBDllWrapper.MBGetInputCount();
+		int hiddenLayers = MBDllWrapper.MBGetHiddenLayerCount();
+		int hidden = MBDllWrapper.MBGetHiddenCountAll();
+		int contexts = MBDllWrapper.MBGetContextCount();
+		int unresolved = MBDllWrapper.MBGetUnresolvedCount();
+		int outputs = MBDllWrapper.MBGetOutputCount();
+		checkError("Cannot read neuron counts of the selected net");
+
+		int count = inputs + hidden + contexts + unresolved + outputs;
+		int[] kind = new int[count];
+		int[] layer = new int[count];
+		int[] idx = new int[count];
+		int[] layerStart = new int[hiddenLayers + 1];	// first neuron of hidden layer l, then of context
+		int n = 0;
+		n = addNeurons(kind, layer, idx, n, MB_NK_INPUT, -1, inputs);
+		for (int l = 0; l < hiddenLayers; l++) {
+			layerStart[l] = n;
+			int cnt = MBDllWrapper.MBGetHiddenCount(l);
+			checkError("Cannot read neuron count of hidden layer " + l);
+			if (n + cnt > inputs + hidden) {
+				throw new IllegalStateException("Hidden layer sizes do not match the hidden neuron count");
+			}
+			n = addNeurons(kind, layer, idx, n, MB_NK_HIDDEN, l, cnt);
+		}
+		if (n != inputs + hidden) {
+			throw new IllegalStateException("Hidden layer sizes do not match the hidden neuron count");
+		}
+		layerStart[hiddenLayers] = n;
+		n = addNeurons(kind, layer, idx, n, MB_NK_CONTEXT, -1, contexts);
+		n = addNeurons(kind, layer, idx, n, MB_NK_UNRESOLVED, -1, unresolved);
+		n = addNeurons(kind, layer, idx, n, MB_NK_OUTPUT, -1, outputs);
+		int outputStart = count - outputs;
+
+		long[] position = new long[count];
+		MBNetLayout probe = new MBNetLayout(layered, kind, layer, idx, position, new int[count + 1], new int[0], new int[0]);
+		int[] x = new int[1];
+		int[] y = new int[1];
+		for (n = 0; n < count; n++) {
+			probe.selectNeuron(n, false);
+			MBDllWrapper.MBGetSelectedNeuronPos(x, y);
+			checkError("Cannot read position of neuron " + n);
+			position[n] = pos(x[0], y[0]);
+		}
+
+		MBLinkProp prop = new MBLinkProp();
+		int[] src = new int[Math.max(count, 16)];
+		int[] dst = new int[src.length];
+		int[] range = new int[4];	// two source ranges [range[0], range[1]) and [range[2], range[3])
+		int links = 0;
+		for (int d = 0; d < count; d++) {
+			range[0] = 0;
+			range[1] = count;
+			range[2] = 0;
+			range[3] = 0;
+			if (layered) {
+				if (kind[d] == MB_NK_INPUT) {
+					range[1] = 0;
+				} else if (kind[d] == MB_NK_HIDDEN || kind[d] == MB_NK_OUTPUT) {
+					int l = (kind[d] == MB_NK_HIDDEN) ? layer[d] : hiddenLayers;
+					range[0] = (l == 0) ? 0 : layerStart[l - 1];
+					range[1] = (l == 0) ? inputs : layerStart[l];
+					range[2] = layerStart[hiddenLayers];	// context and unresolved neurons
+					range[3] = outputStart;
+				}
+			}
+			if (range[1] > range[0] || range[3] > range[2]) {
+				probe.selectLinkTarget(d);
+				checkError("Cannot select target neuron " + d);
+			}
+			for (int r = 0; r < 4; r += 2) {
+				for (int s = range[r]; s < range[r + 1]; s++) {
+					probe.selectNeuron(s, false);
+					checkError("Cannot select source neuron " + s);
+					MBDllWrapper.MBSelectToExtra();
+					MBDllWrapper.MBGetSelectedLinkProp(prop);
+					if ( MBDllWrapper.GetLastError()!=0 ) {
+						continue; // no link from s to d
+					}
+					if (links == src.length) {
+						src = Arrays.copyOf(src, 2 * links);
+						dst = Arrays.copyOf(dst, 2 * links);
+					}
+					src[links] = s;
+					dst[links] = d;
+					links++;
+				}
+			}
+			probe.linkStart[d + 1] = links;
+		}
+		MBDllWrapper.MBClearSelection();
+		MBDllWrapper.MBClearExtraSelection();
+
+		return new MBNetLayout(layered, kind, layer, idx, position, probe.linkStart,
+				Arrays.copyOf(src, links), Arrays.copyOf(dst, links));
+	}
+
+	private static void checkError(String msg)
+	{
+		int err = MBDllWrapper.GetLastError();
+		if (err != 0) {
+			throw new IllegalStateException(msg + " (error " + err + ")");
+		}
+	}
+
+	private static int addNeurons(int[] kind, int[] layer, int[] idx, int n, int k, int l, int cnt)
+	{
+		for (int i = 0; i < cnt; i++, n++) {
+			kind[n] = k;
+			layer[n] = l;
+			idx[n] = i;
+		}
+		return n;
+	}
+
+	/// Scan the currently selected net again the same way this layout was created
+	/// (scan() or scanLayered()), e.g. after its structure has been changed.
+	public MBNetLayout rescan()
+	{
+		return scan(layered);
+	}
+
+	/// Get the index of the neuron at position (x, y) in this layout. Return -1 if there is
+	/// no such neuron, throw an IllegalStateException if several neurons share the position.
+	public int findNeuron(int x, int y)
+	{
+		Integer n = posIndex.get(pos(x, y));
+		if (n == null) {
+			return -1;
+		}
+		if (n < 0) {
+			throw new IllegalStateException("Several neurons at position (" + x + ", " + y + ")");
+		}
+		return n;
+	}
+
+	/// Get the index of the link from neuron <src> to neuron <dst> (-1 if there is none)
+	public int findLink(int src, int dst)
+	{
+		for (int l = linkStart[dst]; l < linkStart[dst + 1]; l++) {
+			if (linkSrc[l] == src) {
+				return l;
+			}
+		}
+		return -1;
+	}
+
+	/// Map every link of <other> onto this layout by the positions of its source and
+	/// target neuron. Return the link index in this layout per link of <other> (-1 if
+	/// the link does not exist here).
+	public int[] mapLinks(MBNetLayout other)
+	{
+		int[] map = new int[other.getLinkCount()];
+		for (int l = 0; l < map.length; l++) {
+			int src = mapNeuron(other, other.linkSrc[l]);
+			int dst = mapNeuron(other, other.linkDst[l]);
+			map[l] = (src < 0 || dst < 0) ? -1 : findLink(src, dst);
+		}
+		return map;
+	}
+
+	private int mapNeuron(MBNetLayout other, int n)
+	{
+		return findNeuron(other.getNeuronX(n), other.getNeuronY(n));
+	}
+
+	/// Throw an IllegalStateException if the neuron counts of the currently selected net
+	/// (inputs, outputs, context, unresolved and per hidden layer) differ from this layout.
+	/// Clears any pending wrapper error code.
+	public void checkNet()
+	{
+		MBDllWrapper.GetLastError();
+		int hiddenLayers = 0;
+		for (int n = 0; n < neuronLayer.length; n++) {
+			hiddenLayers = Math.max(hiddenLayers, neuronLayer[n] + 1);
+		}
+		boolean same = MBDllWrapper.MBGetInputCount() == countNeurons(MB_NK_INPUT, -1)
+				&& MBDllWrapper.MBGetOutputCount() == countNeurons(MB_NK_OUTPUT, -1)
+				&& MBDllWrapper.MBGetContextCount() == countNeurons(MB_NK_CONTEXT, -1)
+				&& MBDllWrapper.MBGetUnresolvedCount() == countNeurons(MB_NK_UNRESOLVED, -1)
+				&& MBDllWrapper.MBGetHiddenLayerCount() == hiddenLayers;
+		for (int l = 0; same && l < hiddenLayers; l++) {
+			same = MBDllWrapper.MBGetHiddenCount(l) == countNeurons(MB_NK_HIDDEN, l);
+		}
+		checkError("Cannot read neuron counts of the selected net");
+		if (!same) {
+			throw new IllegalStateException("Selected net does not match the layout");
+		}
+	}
+
+	private int countNeurons(int kind, int layer)
+	{
+		int cnt = 0;
+		for (int n = 0; n < neuronKind.length; n++) {
+			if (neuronKind[n] == kind && neuronLayer[n] == layer) {
+				cnt++;
+			}
+		}
+		return cnt;
+	}
+
+	/// Check whether the currently selected neuron is neuron <n> of this layout, i.e.
+	/// whether its address still refers to the same neuron.
+	public boolean isSelected(int n)
+	{
+		MBDllWrapper.MBGetSelectedNeuronPos(selX, selY);
+		return MBDllWrapper.GetLastError()==0 && pos(selX[0], selY[0]) == neuronPos[n];
+	}
+
+	/// Get the number of neurons in the layout
+	public int getNeuronCount()
+	{
+		return neuronKind.length;
+	}
+
+	/// Get the number of links in the layout
+	public int getLinkCount()
+	{
+		return linkSrc.length;
+	}
+
+	/// Get the kind (MB_NK_...) of neuron <n>
+	public int getNeuronKind(int n)
+	{
+		return neuronKind[n];
+	}
+
+	/// Get the hidden layer index of neuron <n> (-1 if it is not a hidden neuron)
+	public int getNeuronLayer(int n)
+	{
+		return neuronLayer[n];
+	}
+
+	/// Get the index of neuron <n> inside its layer as used by the MBSelect... methods
+	public int getNeuronIndex(int n)
+	{
+		return neuronIdx[n];
+	}
+
+	/// Get the x position of neuron <n>
+	public int getNeuronX(int n)
+	{
+		return (int) (neuronPos[n] >> 32);
+	}
+
+	/// Get the y position of neuron <n>
+	public int getNeuronY(int n)
+	{
+		return (int) neuronPos[n];
+	}
+
+	/// Get the index of the first incoming link of neuron <n>. <n> may be getNeuronCount().
+	public int getLinkStart(int n)
+	{
+		return linkStart[n];
+	}
+
+	/// Get the source neuron of link <l>
+	public int getLinkSource(int l)
+	{
+		return linkSrc[l];
+	}
+
+	/// Get the target neuron of link <l>
+	public int getLinkTarget(int l)
+	{
+		return linkDst[l];
+	}
+
+	/// Select neuron <n> of the layout in the currently selected net
+	public void selectNeuron(int n, boolean addToSelection)
+	{
+		switch (neuronKind[n]) {
+		case MB_NK_INPUT:
+			MBDllWrapper.MBSelectInput(neuronIdx[n], addToSelection);
+			break;
+		case MB_NK_HIDDEN:
+			MBDllWrapper.MBSelectHidden(neuronLayer[n], neuronIdx[n], addToSelection);
+			break;
+		case MB_NK_CONTEXT:
+			MBDllWrapper.MBSelectContext(neuronIdx[n], addToSelection);
+			break;
+		case MB_NK_UNRESOLVED:
+			MBDllWrapper.MBSelectUnresolved(neuronIdx[n], addToSelection);
+			break;
+		default:
+			MBDllWrapper.MBSelectOutput(neuronIdx[n], addToSelection);
+			break;
+		}
+	}
+
+	/// Put neuron <n> into the Extra Selection so that its incoming links can be
+	/// selected with selectNeuron(source, false) followed by MBSelectToExtra().
+	public void selectLinkTarget(int n)
+	{
+		MBDllWrapper.MBClearExtraSelection();
+		selectNeuron(n, false);
+		MBDllWrapper.MBExtraSelection();
+	}
+
+	/// Select link <l> of the layout in the currently selected net
+	public void selectLink(int l)
+	{
+		selectLinkTarget(linkDst[l]);
+		selectNeuron(linkSrc[l], false);
+		MBDllWrapper.MBSelectToExtra();
+	}
+}
@@ -0,0 +1,354 @@
+package de.membrainminusnn;
+
+/**
+Magnitude pruning of the links of the currently selected net.
+
+Typical use:
+
+MBNetLayout layout = MBNetLayout.scan();
+MBNetSnapshot snap = MBNetSnapshot.capture(layout);
+MBSparseNet full = MBSparseNet.build(layout, snap);
+double[][] in = MBNetPruner.readLessonInputs();
+double[][] target = MBNetPruner.readLessonOutputs();
+MBNetPruner.Measurement before = MBNetPruner.measure(full, in, target, 0.5, 1000);
+
+boolean[] keep = MBNetPruner.selectTopK(layout, snap, 4);	// or selectByThreshold()
+MBNetLayout pruned = MBNetPruner.apply(layout, keep);		// delete links in the net
+MBNetPruner.fineTune(20);								// optional, needs a selected teacher
+MBSparseNet sparse = MBSparseNet.build(pruned, MBNetSnapshot.capture(pruned));
+MBNetPruner.Report report = new MBNetPruner.Report(before, MBNetPruner.measure(sparse, in, target, 0.5, 1000));
+System.out.println(report);
+
+measure() evaluates the lesson both on the DLL net (MBApplyInputAct, MBThinkStep,
+MBGetOutputAct) and on the given MBSparseNet, which must have been built from the
+current DLL net. The accuracy figures are those of the DLL net, i.e. of the net
+that is saved with MBSaveNetAs(). Every pattern where both disagree by more than
+CHECK_TOLERANCE is counted as a mismatch: if Report.isConsistent() returns false,
+the MBSparseNet does not model this net correctly and its timings are meaningless.
+Timings are given for the dense think step of the DLL and for the MBSparseNet.
+The pruning speedup of the shipped net is that of the DLL think step; the ratio
+between the two engines also contains the JNI overhead of the DLL calls.
+
+Links with a locked weight are never pruned. After apply() the pruned net can be
+saved with MBSaveNetAs() as usual.
+*/
+public class MBNetPruner
+{
+	/// Maximum difference between DLL and MBSparseNet outputs that is not a mismatch
+	public static final double CHECK_TOLERANCE = 1e-6;
+
+	/// Result of MBNetPruner.measure() for one net
+	public static class Measurement
+	{
+		public int patterns;
+		public int links;
+		public long bytes;                  // memory of the MBSparseNet CSR link table (not of the DLL net)
+		public double mse;                  // DLL net: mean squared error over all outputs and patterns
+		public int correct;                 // DLL net: patterns where all outputs are within tolerance
+		public int mismatches;              // patterns where DLL and MBSparseNet differ
+		public double maxDiff;              // maximum output difference between DLL and MBSparseNet
+		public double nanosDll;             // time for one pass through the lesson (DLL think step)
+		public double nanosSparse;          // time for one pass through the lesson (MBSparseNet)
+	}
+
+	/// Comparison of a net before and after pruning
+	public static class Report
+	{
+		public Measurement before;
+		public Measurement after;
+
+		public Report(Measurement before, Measurement after)
+		{
+			this.before = before;
+			this.after = after;
+		}
+
+		/// Check whether the MBSparseNet outputs matched the DLL outputs for all patterns
+		public boolean isConsistent()
+		{
+			return before.mismatches == 0 && after.mismatches == 0;
+		}
+
+		public String toString()
+		{
+			return "Links     : " + before.links + " -> " + after.links + "\n"
+				+ "MSE       : " + before.mse + " -> " + after.mse + " (" + (after.mse - before.mse) + ")\n"
+				+ "Correct   : " + before.correct + "/" + before.patterns + " -> " + after.correct + "/" + after.patterns + "\n"
+				+ "Mismatch  : " + before.mismatches + " -> " + after.mismatches + " patterns (max diff "
+				+ before.maxDiff + " -> " + after.maxDiff + ")" + (isConsistent() ? "" : " SPARSE NET DOES NOT MATCH DLL") + "\n"
+				+ "DLL run   : " + before.nanosDll / 1000 + " us -> " + after.nanosDll / 1000 + " us\n"
+				+ "Sparse run: " + before.nanosSparse / 1000 + " us -> " + after.nanosSparse / 1000 + " us\n"
+				+ "Pruning speedup (DLL)   : " + before.nanosDll / after.nanosDll + "\n"
+				+ "Pruning speedup (sparse): " + before.nanosSparse / after.nanosSparse + "\n"
+				+ "Engine ratio (DLL pruned / sparse pruned): " + after.nanosDll / after.nanosSparse + "\n"
+				+ "Sparse CSR table memory: " + before.bytes + " bytes -> " + after.bytes + " bytes (saved "
+				+ (before.bytes - after.bytes) + ")";
+		}
+	}
+
+	/// Keep all links with |weight| >= <threshold>
+	public static boolean[] selectByThreshold(MBNetLayout layout, MBNetSnapshot snap, double threshold)
+	{
+		double[] weight = snap.getWeights();
+		boolean[] lock = snap.getLockWeights();
+		boolean[] keep = new boolean[layout.getLinkCount()];
+		for (int l = 0; l < keep.length; l++) {
+			keep[l] = lock[l] || Math.abs(weight[l]) >= threshold;
+		}
+		return keep;
+	}
+
+	/// Keep the <k> incoming links with the largest |weight| of every neuron
+	public static boolean[] selectTopK(MBNetLayout layout, MBNetSnapshot snap, int k)
+	{
+		double[] weight = snap.getWeights();
+		boolean[] lock = snap.getLockWeights();
+		boolean[] keep = new boolean[layout.getLinkCount()];
+		for (int n = 0; n < layout.getNeuronCount(); n++) {
+			int start = layout.getLinkStart(n);
+			int end = layout.getLinkStart(n + 1);
+			for (int l = start; l < end; l++) {
+				// Rank of link l among the incoming links of n (ties go to the lower index)
+				int rank = 0;
+				for (int m = start; m < end && rank < k; m++) {
+					double wm = Math.abs(weight[m]);
+					double wl = Math.abs(weight[l]);
+					if (wm > wl || (wm == wl && m < l)) {
+						rank++;
+					}
+				}
+				keep[l] = lock[l] || rank < k;
+			}
+		}
+		return keep;
+	}
+
+	/// Delete all links with keepLinks[l] == false from the currently selected net and
+	/// return the layout of the pruned net, created with layout.rescan().
+	///
+	/// The dropped links of each target neuron are deleted at once: all their sources are
+	/// selected, then MBSelectToExtra() and MBDeleteSelectedObjects() are called once.
+	/// Deleting links can move neurons to other hidden layers or to the unresolved neurons,
+	/// so neurons are identified by their position: before each deletion the addresses are
+	/// verified and the net is rescanned if a neuron has moved. Throws an
+	/// IllegalStateException if a DLL call fails or if the pruned net does not contain
+	/// exactly the kept links. In that case the net may have been pruned partially and has
+	/// to be reloaded (MBLoadNet()) before it is used again.
+	public static MBNetLayout apply(MBNetLayout layout, boolean[] keepLinks)
+	{
+		if (keepLinks.length != layout.getLinkCount()) {
+			throw new IllegalArgumentException("keepLinks has " + keepLinks.length + " entries instead of "
+					+ layout.getLinkCount());
+		}
+		MBDllWrapper.GetLastError();
+		MBNetLayout current = layout;
+		int[] drop = new int[layout.getNeuronCount()];		// sources of dropped links (layout)
+		int[] sel = new int[drop.length];					// the same sources in <current>
+		int kept = 0;
+		for (int n = 0; n < layout.getNeuronCount(); n++) {
+			int dropped = 0;
+			for (int l = layout.getLinkStart(n); l < layout.getLinkStart(n + 1); l++) {
+				if (keepLinks[l]) {
+					kept++;
+				} else {
+					drop[dropped++] = layout.getLinkSource(l);
+				}
+			}
+			if (dropped == 0) {
+				continue;
+			}
+
+			// Resolve target and sources in the current net. A rescan clears the Extra
+			// Selection and invalidates the resolved indices, so repeat until none happened.
+			MBNetLayout resolved;
+			do {
+				resolved = current;
+				MBDllWrapper.MBClearExtraSelection();
+				current = select(layout, n, current);
+				MBDllWrapper.MBExtraSelection();
+				for (int i = 0; i < dropped; i++) {
+					current = select(layout, drop[i], current);
+					sel[i] = current.findNeuron(layout.getNeuronX(drop[i]), layout.getNeuronY(drop[i]));
+				}
+			} while (current != resolved);
+
+			for (int i = 0; i < dropped; i++) {
+				current.selectNeuron(sel[i], i > 0);
+			}
+			MBDllWrapper.MBSelectToExtra();
+			MBDllWrapper.MBDeleteSelectedObjects();
+			int err = MBDllWrapper.GetLastError();
+			if (err != 0) {
+				throw new IllegalStateException("Cannot delete the links to neuron " + n + " (error " + err + ")");
+			}
+		}
+		MBDllWrapper.MBClearSelection();
+		MBDllWrapper.MBClearExtraSelection();
+
+		// Verify the result by (source, target) identity
+		MBNetLayout pruned = layout.rescan();
+		int[] map = pruned.mapLinks(layout);
+		for (int l = 0; l < map.length; l++) {
+			if ((map[l] >= 0) != keepLinks[l]) {
+				throw new IllegalStateException("Link " + l + " was " + (keepLinks[l] ? "deleted" : "not deleted"));
+			}
+		}
+		if (pruned.getLinkCount() != kept) {
+			throw new IllegalStateException("Pruned net has " + pruned.getLinkCount() + " links instead of " + kept);
+		}
+		return pruned;
+	}
+
+	/// Select neuron <n> of <layout> in the net using the addresses of <current>. Rescan
+	/// if the neuron has moved since <current> was created. Return the layout used.
+	private static MBNetLayout select(MBNetLayout layout, int n, MBNetLayout current)
+	{
+		for (int tries = 0; ; tries++) {
+			int c = current.findNeuron(layout.getNeuronX(n), layout.getNeuronY(n));
+			if (c >= 0) {
+				current.selectNeuron(c, false);
+				if (current.isSelected(c)) {
+					return current;
+				}
+			}
+			if (tries > 0) {
+				throw new IllegalStateException("Neuron at (" + layout.getNeuronX(n) + ", "
+						+ layout.getNeuronY(n) + ") not found");
+			}
+			current = current.rescan();
+		}
+	}
+
+	/// Perform up to <steps> teach steps with the currently selected teacher and lesson
+	/// to recover from pruning. Return the last teach result (MB_TR_...).
+	public static int fineTune(int steps)
+	{
+		int teacherVal = MBDllWrapper.MB_TR_OK;
+		for (int i = 0; i < steps && teacherVal == MBDllWrapper.MB_TR_OK; i++) {
+			teacherVal = MBDllWrapper.MBTeachStep();
+		}
+		MBDllWrapper.MBStopTeaching();
+		return teacherVal;
+	}
+
+	/// Read the inputs of all patterns of the currently active lesson
+	public static double[][] readLessonInputs()
+	{
+		return readLesson(MBDllWrapper.MBGetLessonInputCount(), true);
+	}
+
+	/// Read the outputs of all patterns of the currently active lesson
+	public static double[][] readLessonOutputs()
+	{
+		return readLesson(MBDllWrapper.MBGetLessonOutputCount(), false);
+	}
+
+	private static double[][] readLesson(int width, boolean inputs)
+	{
+		int selected = MBDllWrapper.MBGetSelectedPattern();
+		double[][] data = new double[MBDllWrapper.MBGetLessonSize()][width];
+		for (int p = 0; p < data.length; p++) {
+			MBDllWrapper.MBSelectPattern(p);
+			for (int i = 0; i < width; i++) {
+				data[p][i] = inputs ? MBDllWrapper.MBGetPatternInput(i) : MBDllWrapper.MBGetPatternOutput(i);
+			}
+		}
+		if (data.length > 0) {
+			MBDllWrapper.MBSelectPattern(selected);
+		}
+		return data;
+	}
+
+	/// Measure the accuracy and speed of the currently selected DLL net and of <net>, which
+	/// must have been built from it, on a lesson. <tolerance> is the maximum absolute error
+	/// per output for a pattern to count as correct, <runs> the number of lesson passes used
+	/// for timing. Throws an IllegalArgumentException if the lesson width does not match
+	/// the net and an IllegalStateException if a DLL call fails.
+	public static Measurement measure(MBSparseNet net, double[][] inputs, double[][] targets,
+			double tolerance, int runs)
+	{
+		if (targets.length != inputs.length) {
+			throw new IllegalArgumentException("Lesson has " + inputs.length + " input and "
+					+ targets.length + " output patterns");
+		}
+		for (int p = 0; p < inputs.length; p++) {
+			if (inputs[p].length != net.getInputCount() || targets[p].length != net.getOutputCount()) {
+				throw new IllegalArgumentException("Pattern " + p + " has " + inputs[p].length + " inputs and "
+						+ targets[p].length + " outputs, the net has " + net.getInputCount() + " and "
+						+ net.getOutputCount());
+			}
+		}
+		if (MBDllWrapper.MBGetInputCount() != net.getInputCount()
+				|| MBDllWrapper.MBGetOutputCount() != net.getOutputCount()) {
+			throw new IllegalStateException("Sparse net does not match the selected net");
+		}
+		MBDllWrapper.GetLastError();
+
+		Measurement m = new Measurement();
+		m.patterns = inputs.length;
+		m.links = net.getLinkCount();
+		m.bytes = net.getLinkMemory();
+
+		double[] dll = new double[net.getOutputCount()];
+		double[] sparse = new double[dll.length];
+		for (int p = 0; p < inputs.length; p++) {
+			thinkDll(inputs[p], dll);
+			net.think(inputs[p], sparse);
+			double maxErr = 0;
+			double diff = 0;
+			for (int i = 0; i < dll.length; i++) {
+				double err = dll[i] - targets[p][i];
+				m.mse += err * err;
+				maxErr = Math.max(maxErr, Math.abs(err));
+				diff = Math.max(diff, Math.abs(dll[i] - sparse[i]));
+			}
+			if (maxErr <= tolerance) {
+				m.correct++;
+			}
+			if (!(diff <= CHECK_TOLERANCE)) {
+				m.mismatches++;
+			}
+			m.maxDiff = Math.max(m.maxDiff, diff);
+		}
+		m.mse /= Math.max(1, inputs.length * dll.length);
+
+		// Warm up once, then time
+		time(null, inputs, dll, runs);
+		time(net, inputs, sparse, runs);
+		m.nanosDll = (double) time(null, inputs, dll, runs) / Math.max(1, runs);
+		m.nanosSparse = (double) time(net, inputs, sparse, runs) / Math.max(1, runs);
+
+		int err = MBDllWrapper.GetLastError();
+		if (err != 0) {
+			throw new IllegalStateException("Cannot think on the selected net (error " + err + ")");
+		}
+		return m;
+	}
+
+	private static void thinkDll(double[] inputs, double[] outputs)
+	{
+		for (int i = 0; i < inputs.length; i++) {
+			MBDllWrapper.MBApplyInputAct(i, inputs[i]);
+		}
+		MBDllWrapper.MBThinkStep();
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = MBDllWrapper.MBGetOutputAct(i);
+		}
+	}
+
+	/// Time <runs> lesson passes on <net> or on the DLL net if <net> is null
+	private static long time(MBSparseNet net, double[][] inputs, double[] out, int runs)
+	{
+		long start = System.nanoTime();
+		for (int r = 0; r < runs; r++) {
+			for (int p = 0; p < inputs.length; p++) {
+				if (net == null) {
+					thinkDll(inputs[p], out);
+				} else {
+					net.think(inputs[p], out);
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
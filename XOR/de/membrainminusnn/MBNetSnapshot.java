@@ -0,0 +1,276 @@
+package de.membrainminusnn;
+
+import de.membrainminusnn.MBDllWrapper.MBLinkProp;
+import de.membrainminusnn.MBDllWrapper.MBNeuronProp;
+
+/**
+In-memory snapshot of the trainable parameters of the currently selected net:
+all link weights and lock flags plus all neuron activation thresholds and lock
+flags, stored in flat primitive arrays in the order given by an MBNetLayout.
+
+Example (checkpoint the best net while teaching):
+
+MBNetLayout layout = MBNetLayout.scan();
+MBNetSnapshot best = MBNetSnapshot.capture(layout);
+...
+if (netErr < bestErr) best.capture();	// refresh in place, no allocations
+...
+best.restore();
+
+The DLL has no bulk transfer function, so capturing and restoring still goes
+through the select/get/set interface with one JNI call per value set: 3 calls
+per link (select source, MBSelectToExtra, get/set link prop) plus 3 calls per
+target neuron for the Extra Selection and 2 (capture) or 3 (restore) calls per
+neuron. The single MBLinkProp and MBNeuronProp instance is reused for all
+objects, so no garbage is created per link. The one-time cost of finding the
+links is paid by MBNetLayout.scan() / scanLayered().
+
+capture() and restore() first check the neuron counts of the net against the
+layout (MBNetLayout.checkNet()) and then verify the position of every neuron
+before reading or writing it, so a snapshot is never applied to a net whose
+structure has changed, e.g. by a teacher that adds neurons or by
+MBNetPruner.apply(). They throw an IllegalStateException on such a mismatch or
+if a DLL call fails; restore() may then have written part of the parameters.
+Both clear the current selection, the Extra Selection and any pending wrapper
+error code. Verifying the positions costs 2 more JNI calls per neuron.
+
+The arrays returned by the getters are the internal arrays of the snapshot (no
+copies). They can be modified directly, e.g. to average or diff weights, and
+written back to the net with restore().
+*/
+public class MBNetSnapshot
+{
+	private final MBNetLayout layout;
+
+	// Per link (layout link order)
+	private final double[] weight;
+	private final boolean[] lockWeight;
+	private final int[] length;
+	private final boolean[] displayWeight;
+
+	// Per neuron (layout neuron order)
+	private final double[] actThres;
+	private final boolean[] lockActThres;
+
+	// Reused for every DLL transfer
+	private final MBLinkProp linkProp = new MBLinkProp();
+	private final MBNeuronProp neuronProp = new MBNeuronProp();
+
+	/// Create an empty (all zero) snapshot for the given layout
+	public MBNetSnapshot(MBNetLayout layout)
+	{
+		this.layout = layout;
+		int links = layout.getLinkCount();
+		int neurons = layout.getNeuronCount();
+		weight = new double[links];
+		lockWeight = new boolean[links];
+		length = new int[links];
+		displayWeight = new boolean[links];
+		actThres = new double[neurons];
+		lockActThres = new boolean[neurons];
+	}
+
+	/// Create a new snapshot of the currently selected net
+	public static MBNetSnapshot capture(MBNetLayout layout)
+	{
+		MBNetSnapshot snap = new MBNetSnapshot(layout);
+		snap.capture();
+		return snap;
+	}
+
+	/// Read all parameters of the currently selected net into this snapshot
+	public void capture()
+	{
+		layout.checkNet();
+		int neurons = layout.getNeuronCount();
+		for (int n = 0; n < neurons; n++) {
+			selectNeuron(n);
+			MBDllWrapper.MBGetSelectedNeuronProp(neuronProp);
+			actThres[n] = neuronProp.actThres;
+			lockActThres[n] = neuronProp.lockActThres;
+
+			int end = layout.getLinkStart(n + 1);
+			if (layout.getLinkStart(n) == end) {
+				continue;
+			}
+			layout.selectLinkTarget(n);
+			for (int l = layout.getLinkStart(n); l < end; l++) {
+				layout.selectNeuron(layout.getLinkSource(l), false);
+				MBDllWrapper.MBSelectToExtra();
+				MBDllWrapper.MBGetSelectedLinkProp(linkProp);
+				weight[l] = linkProp.weight;
+				lockWeight[l] = linkProp.lockWeight;
+				length[l] = linkProp.length;
+				displayWeight[l] = linkProp.displayWeight;
+			}
+			checkError("Cannot read the parameters of neuron " + n);
+		}
+		MBDllWrapper.MBClearSelection();
+		MBDllWrapper.MBClearExtraSelection();
+	}
+
+	/// Write all parameters of this snapshot to the currently selected net.
+	/// The net must still have the structure described by getLayout().
+	public void restore()
+	{
+		layout.checkNet();
+		int neurons = layout.getNeuronCount();
+		for (int n = 0; n < neurons; n++) {
+			// Neuron properties can only be set as a whole: keep all other fields as they are
+			selectNeuron(n);
+			MBDllWrapper.MBGetSelectedNeuronProp(neuronProp);
+			neuronProp.actThres = actThres[n];
+			neuronProp.lockActThres = lockActThres[n];
+			MBDllWrapper.MBSetSelectedNeuronProp(neuronProp);
+
+			int end = layout.getLinkStart(n + 1);
+			if (layout.getLinkStart(n) == end) {
+				continue;
+			}
+			layout.selectLinkTarget(n);
+			for (int l = layout.getLinkStart(n); l < end; l++) {
+				layout.selectNeuron(layout.getLinkSource(l), false);
+				MBDllWrapper.MBSelectToExtra();
+				linkProp.weight = weight[l];
+				linkProp.lockWeight = lockWeight[l];
+				linkProp.length = length[l];
+				linkProp.displayWeight = displayWeight[l];
+				MBDllWrapper.MBSetSelectedLinkProp(linkProp);
+			}
+			checkError("Cannot write the parameters of neuron " + n);
+		}
+		MBDllWrapper.MBClearSelection();
+		MBDllWrapper.MBClearExtraSelection();
+	}
+
+	/// Select neuron <n> and verify that its address still refers to the same neuron
+	private void selectNeuron(int n)
+	{
+		layout.selectNeuron(n, false);
+		if (!layout.isSelected(n)) {
+			throw new IllegalStateException("Neuron " + n + " has moved or cannot be selected");
+		}
+	}
+
+	private static void checkError(String msg)
+	{
+		int err = MBDllWrapper.GetLastError();
+		if (err != 0) {
+			throw new IllegalStateException(msg + " (error " + err + ")");
+		}
+	}
+
+	/// Copy all parameters of <other> into this snapshot. Both must use the same layout.
+	public void copyFrom(MBNetSnapshot other)
+	{
+		checkLayout(other);
+		System.arraycopy(other.weight, 0, weight, 0, weight.length);
+		System.arraycopy(other.lockWeight, 0, lockWeight, 0, lockWeight.length);
+		System.arraycopy(other.length, 0, length, 0, length.length);
+		System.arraycopy(other.displayWeight, 0, displayWeight, 0, displayWeight.length);
+		System.arraycopy(other.actThres, 0, actThres, 0, actThres.length);
+		System.arraycopy(other.lockActThres, 0, lockActThres, 0, lockActThres.length);
+	}
+
+	/// Create an independent copy of this snapshot
+	public MBNetSnapshot copy()
+	{
+		MBNetSnapshot snap = new MBNetSnapshot(layout);
+		snap.copyFrom(this);
+		return snap;
+	}
+
+	/// Create a snapshot with the averaged weights and thresholds of all given snapshots.
+	/// Lock flags and the other link properties are taken from the first snapshot.
+	public static MBNetSnapshot average(MBNetSnapshot[] snaps)
+	{
+		MBNetSnapshot avg = snaps[0].copy();
+		for (int i = 1; i < snaps.length; i++) {
+			avg.checkLayout(snaps[i]);
+			for (int l = 0; l < avg.weight.length; l++) {
+				avg.weight[l] += snaps[i].weight[l];
+			}
+			for (int n = 0; n < avg.actThres.length; n++) {
+				avg.actThres[n] += snaps[i].actThres[n];
+			}
+		}
+		for (int l = 0; l < avg.weight.length; l++) {
+			avg.weight[l] /= snaps.length;
+		}
+		for (int n = 0; n < avg.actThres.length; n++) {
+			avg.actThres[n] /= snaps.length;
+		}
+		return avg;
+	}
+
+	/// Get the per link weight difference (this - other)
+	public double[] weightDiff(MBNetSnapshot other)
+	{
+		checkLayout(other);
+		double[] diff = new double[weight.length];
+		for (int l = 0; l < diff.length; l++) {
+			diff[l] = weight[l] - other.weight[l];
+		}
+		return diff;
+	}
+
+	/// Get the per neuron activation threshold difference (this - other)
+	public double[] actThresDiff(MBNetSnapshot other)
+	{
+		checkLayout(other);
+		double[] diff = new double[actThres.length];
+		for (int n = 0; n < diff.length; n++) {
+			diff[n] = actThres[n] - other.actThres[n];
+		}
+		return diff;
+	}
+
+	private void checkLayout(MBNetSnapshot other)
+	{
+		if (other.layout != layout) {
+			throw new IllegalArgumentException("Snapshots use different net layouts");
+		}
+	}
+
+	/// Get the layout this snapshot refers to
+	public MBNetLayout getLayout()
+	{
+		return layout;
+	}
+
+	/// Get the link weights (layout link order)
+	public double[] getWeights()
+	{
+		return weight;
+	}
+
+	/// Get the link weight lock flags (layout link order)
+	public boolean[] getLockWeights()
+	{
+		return lockWeight;
+	}
+
+	/// Get the link lengths (layout link order)
+	public int[] getLinkLengths()
+	{
+		return length;
+	}
+
+	/// Get the link weight display flags (layout link order)
+	public boolean[] getDisplayWeights()
+	{
+		return displayWeight;
+	}
+
+	/// Get the neuron activation thresholds (layout neuron order)
+	public double[] getActThresholds()
+	{
+		return actThres;
+	}
+
+	/// Get the neuron activation threshold lock flags (layout neuron order)
+	public boolean[] getLockActThresholds()
+	{
+		return lockActThres;
+	}
+}
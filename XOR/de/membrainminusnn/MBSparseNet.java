@@ -0,0 +1,341 @@
+package de.membrainminusnn;
+
+import java.util.Arrays;
+
+import de.membrainminusnn.MBDllWrapper.MBNeuronProp;
+
+/**
+Java side inference engine for feed-forward nets. The links are stored as a
+compressed sparse row (CSR) table: for every neuron the source neuron indices
+and weights of its incoming links are stored contiguously, so a think step only
+touches the links that actually exist. Combined with MBNetPruner this allows
+running a pruned net with a fraction of the work and memory of the full net.
+
+The net is built from an MBNetLayout and MBNetSnapshot of the currently selected
+net. The remaining neuron properties (input and activation function, output fire
+level, normalization) are read from the DLL once during build().
+
+Supported are the input functions MB_IF_SUM and MB_IF_MUL and the activation
+functions MB_AF_LOGISTIC, MB_AF_IDENTICAL, MB_AF_IDENTICAL_0_1, MB_AF_TAN_H,
+MB_AF_BINARY, MB_AF_IDENTICAL_M11, MB_AF_RELU and MB_AF_SOFTPLUS. Normalization of
+input and output neurons uses the activation ranges configured in the net
+(MBGetInputActRange... / MBGetOutputActRange...). A think step computes the
+settled state of the net for one input pattern. Everything that makes the DLL
+output depend on earlier think steps is not modeled, so build() throws an
+IllegalStateException for nets with loops, unsupported functions, activation
+sustain, leakage, activation ignore values, link lengths other than 1 or an
+output recovery time above 1 on MB_OFL_1 neurons.
+
+The engine is a reimplementation of the DLL think step: use MBNetPruner.measure()
+to check that it gives the same outputs as the DLL for a given net.
+
+An MBSparseNet holds its own working arrays and must not be used by several
+threads at the same time.
+*/
+public class MBSparseNet
+{
+	private final int[] inputNeuron;		// layout neuron index of input <i>
+	private final int[] outputNeuron;		// layout neuron index of output <i>
+	private final int[] order;				// evaluation order of all non input neurons
+
+	// CSR link table (incoming links per neuron)
+	private final int[] rowStart;
+	private final int[] col;
+	private final double[] val;
+
+	// Per neuron
+	private final int[] inputFunc;
+	private final int[] actFunc;
+	private final double[] actThres;
+	private final double[] actParm;			// expLogistic or parmTanHyp
+	private final boolean[] fireAct;		// MB_OFL_ACT
+	private final double[] fireThresLow;
+	private final double[] fireThresHi;
+	private final double[] normScale;		// act = value * normScale + normOffset
+	private final double[] normOffset;
+
+	// Working arrays
+	private final double[] act;
+	private final double[] out;
+
+	private MBSparseNet(MBNetLayout layout, MBNetSnapshot snap)
+	{
+		int neurons = layout.getNeuronCount();
+		int links = layout.getLinkCount();
+
+		rowStart = new int[neurons + 1];
+		col = new int[links];
+		val = new double[links];
+		for (int n = 0; n <= neurons; n++) {
+			rowStart[n] = layout.getLinkStart(n);
+		}
+		double[] weights = snap.getWeights();
+		int[] lengths = snap.getLinkLengths();
+		for (int l = 0; l < links; l++) {
+			if (lengths[l] != 1) {
+				throw new IllegalStateException("Length " + lengths[l] + " of link " + l + " is not supported");
+			}
+			col[l] = layout.getLinkSource(l);
+			val[l] = weights[l];
+		}
+
+		int inputs = 0;
+		int outputs = 0;
+		for (int n = 0; n < neurons; n++) {
+			if (layout.getNeuronKind(n) == MBNetLayout.MB_NK_INPUT) {
+				inputs++;
+			} else if (layout.getNeuronKind(n) == MBNetLayout.MB_NK_OUTPUT) {
+				outputs++;
+			}
+		}
+		inputNeuron = new int[inputs];
+		outputNeuron = new int[outputs];
+		for (int n = 0; n < neurons; n++) {
+			if (layout.getNeuronKind(n) == MBNetLayout.MB_NK_INPUT) {
+				inputNeuron[layout.getNeuronIndex(n)] = n;
+			} else if (layout.getNeuronKind(n) == MBNetLayout.MB_NK_OUTPUT) {
+				outputNeuron[layout.getNeuronIndex(n)] = n;
+			}
+		}
+		order = sortTopological(neurons, layout);
+
+		inputFunc = new int[neurons];
+		actFunc = new int[neurons];
+		actThres = snap.getActThresholds().clone();
+		actParm = new double[neurons];
+		fireAct = new boolean[neurons];
+		fireThresLow = new double[neurons];
+		fireThresHi = new double[neurons];
+		normScale = new double[neurons];
+		normOffset = new double[neurons];
+		act = new double[neurons];
+		out = new double[neurons];
+	}
+
+	/// Build the sparse net from the parameters in <snap>. Reads the remaining neuron
+	/// properties from the currently selected net (clears the current selection and any
+	/// pending wrapper error code).
+	public static MBSparseNet build(MBNetLayout layout, MBNetSnapshot snap)
+	{
+		MBSparseNet net = new MBSparseNet(layout, snap);
+		MBDllWrapper.GetLastError();
+		MBNeuronProp prop = new MBNeuronProp();
+		for (int n = 0; n < layout.getNeuronCount(); n++) {
+			layout.selectNeuron(n, false);
+			MBDllWrapper.MBGetSelectedNeuronProp(prop);
+			net.setNeuronProp(n, layout.getNeuronKind(n), layout.getNeuronIndex(n), prop);
+		}
+		MBDllWrapper.MBClearSelection();
+		int err = MBDllWrapper.GetLastError();
+		if (err != 0) {
+			throw new IllegalStateException("Cannot read neuron properties (error " + err + ")");
+		}
+		return net;
+	}
+
+	private void setNeuronProp(int n, int kind, int idx, MBNeuronProp prop)
+	{
+		if (prop.useActIgnoreVal) {
+			throw new IllegalStateException("Activation ignore value of neuron " + n + " is not supported");
+		}
+		if (prop.leakage != 0) {
+			throw new IllegalStateException("Leakage of neuron " + n + " is not supported");
+		}
+		if (prop.outputFireLevel == MBDllWrapper.MB_OFL_1 && prop.outputRecovTime > 1) {
+			throw new IllegalStateException("Output recovery time of neuron " + n + " is not supported");
+		}
+		if (kind != MBNetLayout.MB_NK_INPUT) {
+			if (prop.inputFunc != MBDllWrapper.MB_IF_SUM && prop.inputFunc != MBDllWrapper.MB_IF_MUL) {
+				throw new IllegalStateException("Unsupported input function " + prop.inputFunc);
+			}
+			if (!isSupported(prop.actFunc)) {
+				throw new IllegalStateException("Unsupported activation function " + prop.actFunc);
+			}
+			if (prop.actSustain != 0) {
+				throw new IllegalStateException("Activation sustain of neuron " + n + " is not supported");
+			}
+		}
+		inputFunc[n] = prop.inputFunc;
+		actFunc[n] = prop.actFunc;
+		actParm[n] = (prop.actFunc == MBDllWrapper.MB_AF_TAN_H) ? prop.parmTanHyp : prop.expLogistic;
+		fireAct[n] = (prop.outputFireLevel == MBDllWrapper.MB_OFL_ACT);
+		fireThresLow[n] = prop.fireThresLow;
+		fireThresHi[n] = prop.fireThresHi;
+
+		// Normalization maps [normRangeLow, normRangeHigh] onto the activation range of the
+		// I/O neuron as configured in the net
+		normScale[n] = 1;
+		normOffset[n] = 0;
+		if (!prop.useNormalization
+				|| (kind != MBNetLayout.MB_NK_INPUT && kind != MBNetLayout.MB_NK_OUTPUT)) {
+			return;
+		}
+		double min;
+		double max;
+		if (kind == MBNetLayout.MB_NK_INPUT) {
+			min = MBDllWrapper.MBGetInputActRangeMin(idx);
+			max = MBDllWrapper.MBGetInputActRangeMax(idx);
+		} else {
+			min = MBDllWrapper.MBGetOutputActRangeMin(idx);
+			max = MBDllWrapper.MBGetOutputActRangeMax(idx);
+		}
+		if (!(max > min) || Double.isInfinite(max - min) || !(prop.normRangeHigh != prop.normRangeLow)) {
+			throw new IllegalStateException("Invalid normalization range of neuron " + n);
+		}
+		normScale[n] = (max - min) / (prop.normRangeHigh - prop.normRangeLow);
+		normOffset[n] = min - prop.normRangeLow * normScale[n];
+	}
+
+	private static int[] sortTopological(int neurons, MBNetLayout layout)
+	{
+		// Kahn's algorithm on the outgoing links
+		int[] pending = new int[neurons];
+		int[] outStart = new int[neurons + 1];
+		for (int l = 0; l < layout.getLinkCount(); l++) {
+			outStart[layout.getLinkSource(l) + 1]++;
+		}
+		for (int n = 0; n < neurons; n++) {
+			outStart[n + 1] += outStart[n];
+			pending[n] = layout.getLinkStart(n + 1) - layout.getLinkStart(n);
+			if (pending[n] > 0 && layout.getNeuronKind(n) == MBNetLayout.MB_NK_INPUT) {
+				throw new IllegalStateException("Input neuron " + layout.getNeuronIndex(n) + " has incoming links");
+			}
+		}
+		int[] outDst = new int[layout.getLinkCount()];
+		int[] fill = outStart.clone();
+		for (int l = 0; l < layout.getLinkCount(); l++) {
+			outDst[fill[layout.getLinkSource(l)]++] = layout.getLinkTarget(l);
+		}
+
+		int[] queue = new int[neurons];
+		int head = 0;
+		int tail = 0;
+		for (int n = 0; n < neurons; n++) {
+			if (pending[n] == 0) {
+				queue[tail++] = n;
+			}
+		}
+		while (head < tail) {
+			int n = queue[head++];
+			for (int i = outStart[n]; i < outStart[n + 1]; i++) {
+				if (--pending[outDst[i]] == 0) {
+					queue[tail++] = outDst[i];
+				}
+			}
+		}
+		if (tail < neurons) {
+			throw new IllegalStateException("Net contains loops and cannot be evaluated feed-forward");
+		}
+
+		int[] order = new int[neurons];
+		int cnt = 0;
+		for (int i = 0; i < neurons; i++) {
+			if (layout.getNeuronKind(queue[i]) != MBNetLayout.MB_NK_INPUT) {
+				order[cnt++] = queue[i];
+			}
+		}
+		return Arrays.copyOf(order, cnt);
+	}
+
+	/// Check whether an activation function is supported by think()
+	private static boolean isSupported(int func)
+	{
+		return func == MBDllWrapper.MB_AF_LOGISTIC || func == MBDllWrapper.MB_AF_IDENTICAL
+				|| func == MBDllWrapper.MB_AF_IDENTICAL_0_1 || func == MBDllWrapper.MB_AF_TAN_H
+				|| func == MBDllWrapper.MB_AF_BINARY || func == MBDllWrapper.MB_AF_IDENTICAL_M11
+				|| func == MBDllWrapper.MB_AF_RELU || func == MBDllWrapper.MB_AF_SOFTPLUS;
+	}
+
+	private static double activate(int func, double parm, double x)
+	{
+		if (func == MBDllWrapper.MB_AF_LOGISTIC) {
+			return 1 / (1 + Math.exp(-parm * x));
+		}
+		if (func == MBDllWrapper.MB_AF_TAN_H) {
+			return Math.tanh(parm * x);
+		}
+		if (func == MBDllWrapper.MB_AF_IDENTICAL_0_1) {
+			return Math.min(1, Math.max(0, x));
+		}
+		if (func == MBDllWrapper.MB_AF_IDENTICAL_M11) {
+			return Math.min(1, Math.max(-1, x));
+		}
+		if (func == MBDllWrapper.MB_AF_BINARY) {
+			return (x >= 0) ? 1 : 0;
+		}
+		if (func == MBDllWrapper.MB_AF_RELU) {
+			return Math.max(0, x);
+		}
+		if (func == MBDllWrapper.MB_AF_SOFTPLUS) {
+			return Math.log1p(Math.exp(x));
+		}
+		return x; // MB_AF_IDENTICAL
+	}
+
+	private double fire(int n, double a)
+	{
+		if (fireAct[n]) {
+			return a;
+		}
+		return (a >= fireThresLow[n] && a <= fireThresHi[n]) ? 1 : 0;
+	}
+
+	/// Perform one think step: apply <inputs> (one value per input neuron) and store
+	/// the activation values of the output neurons in <outputs>, just like
+	/// MBApplyInputAct(), MBThinkStep() and MBGetOutputAct() on the DLL.
+	public void think(double[] inputs, double[] outputs)
+	{
+		for (int i = 0; i < inputNeuron.length; i++) {
+			int n = inputNeuron[i];
+			act[n] = inputs[i] * normScale[n] + normOffset[n];
+			out[n] = fire(n, act[n]);
+		}
+		for (int i = 0; i < order.length; i++) {
+			int n = order[i];
+			int start = rowStart[n];
+			int end = rowStart[n + 1];
+			double net;
+			if (inputFunc[n] == MBDllWrapper.MB_IF_MUL && start < end) {
+				net = 1;
+				for (int l = start; l < end; l++) {
+					net *= val[l] * out[col[l]];
+				}
+			} else {
+				net = 0;
+				for (int l = start; l < end; l++) {
+					net += val[l] * out[col[l]];
+				}
+			}
+			act[n] = activate(actFunc[n], actParm[n], net - actThres[n]);
+			out[n] = fire(n, act[n]);
+		}
+		for (int i = 0; i < outputNeuron.length; i++) {
+			int n = outputNeuron[i];
+			outputs[i] = (act[n] - normOffset[n]) / normScale[n];
+		}
+	}
+
+	/// Get the number of input neurons
+	public int getInputCount()
+	{
+		return inputNeuron.length;
+	}
+
+	/// Get the number of output neurons
+	public int getOutputCount()
+	{
+		return outputNeuron.length;
+	}
+
+	/// Get the number of links stored in the CSR table
+	public int getLinkCount()
+	{
+		return val.length;
+	}
+
+	/// Get the memory used by the CSR link table in bytes
+	public long getLinkMemory()
+	{
+		return 4L * rowStart.length + 4L * col.length + 8L * val.length;
+	}
+}